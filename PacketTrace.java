@@ -0,0 +1,166 @@
+package tftp.udp.server;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records packets seen by the server to a binary trace file. Packets are
+ * stored in a lock-free ring buffer by the server thread and written to
+ * disk by this thread, so recording never blocks on I/O
+ *
+ * File format: magic, version, then one 14 byte record per event
+ * (time in nanoseconds since start, event, opcode, block bytes, length).
+ * Closing the trace adds an END record whose time field holds the number
+ * of records dropped because the buffer was full or the trace was closing
+ */
+public class PacketTrace extends Thread {
+
+    public static final int MAGIC = 0x54465452; //"TFTR"
+    public static final int VERSION = 2;
+
+    public static final byte RECEIVED = 0; //packet received from client
+    public static final byte SENT = 1; //packet sent to client
+    public static final byte TIMEOUT = 2; //receive timed out, packet lost
+    public static final byte END = 3; //last record, time field is the dropped count
+
+    private static final int CAPACITY = 1 << 16; //records held in memory, power of two
+    private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long start = System.nanoTime();
+    private final long[] times = new long[CAPACITY];
+    private final int[] headers = new int[CAPACITY]; //event, opcode and block bytes
+    private final int[] lengths = new int[CAPACITY];
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY); //sequence stored in each slot
+    private final AtomicLong head = new AtomicLong(); //next sequence to claim
+    private final AtomicLong dropped = new AtomicLong(); //records lost to a full buffer
+    private volatile long tail; //next sequence to write to disk
+    private volatile boolean closed;
+
+    private final DataOutputStream out;
+
+    /**
+     * Creates a trace writing to the given file, call start to begin flushing
+     *
+     * @param file trace file to create
+     * @throws IOException if the file cannot be created
+     */
+    public PacketTrace(File file) throws IOException {
+        super("PacketTrace");
+        setDaemon(true);
+        for (int i = 0; i < CAPACITY; i++) {
+            published.set(i, -1);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Records a packet event, dropped if the buffer is full or the trace
+     * is closed
+     *
+     * @param event RECEIVED, SENT or TIMEOUT
+     * @param data packet data, may be null for timeouts
+     * @param length packet length
+     */
+    public void record(byte event, byte[] data, int length) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        long time = System.nanoTime() - start;
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & (CAPACITY - 1));
+        int opCode = data != null && length > 1 ? data[1] & 0xff : 0;
+        int block = data != null && length > 3 ? ((data[2] & 0xff) << 8) | (data[3] & 0xff) : 0;
+        times[slot] = time;
+        headers[slot] = (event << 24) | (opCode << 16) | block;
+        lengths[slot] = length;
+        published.set(slot, sequence); //makes the slot visible to the flusher
+    }
+
+    /**
+     * @return number of records dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops recording, writes out remaining records and the END record and
+     * closes the file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (out) {
+            //records published while closing, claimed ones still unwritten are dropped
+            drain();
+            dropped.addAndGet(head.get() - tail);
+            out.writeLong(dropped.get());
+            out.writeByte(END);
+            out.writeByte(0);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                drain();
+                LockSupport.parkNanos(FLUSH_INTERVAL);
+            }
+            drain();
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * Writes all published records to the file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private void drain() throws IOException {
+        synchronized (out) {
+            long sequence = tail;
+            while (true) {
+                int slot = (int) (sequence & (CAPACITY - 1));
+                //stops at the first slot still being written
+                if (published.get(slot) != sequence) {
+                    break;
+                }
+                int header = headers[slot];
+                out.writeLong(times[slot]);
+                out.writeByte(header >>> 24);
+                out.writeByte(header >>> 16);
+                out.writeShort(header);
+                out.writeShort(lengths[slot]);
+                sequence++;
+                tail = sequence; //frees the slot for producers
+            }
+            out.flush();
+        }
+    }
+}
@@ -13,8 +13,10 @@ import java.util.Arrays;
 public class TFTPUDPServer extends Thread{
 
     protected DatagramSocket socket;
+    protected UploadWriter writer; //write-behind stage for uploads
+    protected PacketTrace trace; //packet trace, null unless tftp.trace is set
     
-    public TFTPUDPServer() throws SocketException {
+    public TFTPUDPServer() throws IOException {
         this("UDPSocketServer");
     }
     
@@ -22,10 +24,27 @@ public class TFTPUDPServer extends Thread{
         new TFTPUDPServer().start();
     }
 
-    public TFTPUDPServer(String name) throws SocketException{
+    public TFTPUDPServer(String name) throws IOException{
         super(name);
         socket = new DatagramSocket(9000);
         socket.setSoTimeout(100000); //timeout
+        writer = new UploadWriter();
+        writer.start();
+        //records traffic to the given file when started with -Dtftp.trace=<file>
+        String traceFile = System.getProperty("tftp.trace");
+        if (traceFile != null){
+            trace = new PacketTrace(new File(traceFile));
+            trace.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    trace.close();
+                    System.out.println("Trace closed, records dropped: " + trace.getDropped());
+                }
+                catch (IOException e) {
+                    System.err.println(e);
+                }
+            }));
+        }
     }
     
     @Override
@@ -35,6 +54,7 @@ public class TFTPUDPServer extends Thread{
             while (true) {
                 DatagramPacket packet = new DatagramPacket(new byte[516], 516);
                 socket.receive(packet);
+                record(PacketTrace.RECEIVED, packet);
                 System.out.println("Connection from: " + packet.getAddress() + ", " + packet.getPort() + "...");
                 int opCode = (int) packet.getData()[1];//get opcode from client packet
                 
@@ -144,10 +164,12 @@ public class TFTPUDPServer extends Thread{
                 while(true){
                     try{
                         socket.receive(ackPacket);
+                        record(PacketTrace.RECEIVED, ackPacket);
                         break;
                     }
                     //resend data if timeout occurs
                     catch(SocketTimeoutException e){
+                        record(PacketTrace.TIMEOUT, null);
                         System.err.println("Timeout from server occured");
                         System.err.println("Resending packet");
                         sendPacket(block, packet);
@@ -184,6 +206,7 @@ public class TFTPUDPServer extends Thread{
             packet.setAddress(receivedPacket.getAddress());
             packet.setPort(receivedPacket.getPort());
             socket.send(packet);
+            record(PacketTrace.SENT, packet);
         }
         catch (IOException e) {
             System.err.println(e);
@@ -197,9 +220,6 @@ public class TFTPUDPServer extends Thread{
      * @throws IOException if timeout reached
      */
     private void readFile(DatagramPacket packet)throws IOException {
-        //sending acknowledgement of write request (block number 0)
-        sendACK(packet,new byte[]{0,0});
-        
         //gets file name from request data
         byte[] dataFileName = packet.getData();
         int endIndex = 0;
@@ -215,41 +235,73 @@ public class TFTPUDPServer extends Thread{
         
         
         boolean endOfFile = false; //end of file flag
-        byte[] dataFile = new byte[0]; //array containing all file data
-        //loops until file transfer complete
-        while(!endOfFile){
-            //receiving data packet
-            while(true){
-                DatagramPacket packetReceived = new DatagramPacket(new byte[516], 516);
-                try{
-                    socket.receive(packetReceived);
-                    //get file data without opcode and block number
-                    byte[] data = Arrays.copyOfRange(packetReceived.getData(),4,packetReceived.getLength()); 
-                    dataFile = concatenateArrays(dataFile,data);
+        boolean saved = false; //file synced to disk
+        //blocks handed to the writer thread as they arrive
+        UploadWriter.Session upload;
+        try{
+            upload = writer.open(new File("src\\tftp\\udp\\server\\"+fileName));
+        }
+        //error packet sent instead of acknowledgement if file cannot be created
+        catch(IOException e){
+            System.err.println(e);
+            sendError(packet,"Could not create file".getBytes(), (byte) 2);
+            return;
+        }
+        
+        //sending acknowledgement of write request (block number 0)
+        sendACK(packet,new byte[]{0,0});
+        try{
+            //loops until file transfer complete
+            while(!endOfFile){
+                //receiving data packet
+                while(true){
+                    DatagramPacket packetReceived = new DatagramPacket(new byte[516], 516);
+                    try{
+                        socket.receive(packetReceived);
+                        record(PacketTrace.RECEIVED, packetReceived);
+                        //get file data without opcode and block number
+                        byte[] data = Arrays.copyOfRange(packetReceived.getData(),4,packetReceived.getLength()); 
+                        upload.add(data);
 
-                    //write ack to client with block number
-                    sendACK(packetReceived,new byte[]{packetReceived.getData()[2],packetReceived.getData()[3]});
+                        System.out.println("Block "+ (packetReceived.getData()[2] + packetReceived.getData()[3])+" received");
 
-                    System.out.println("Block "+ (packetReceived.getData()[2] + packetReceived.getData()[3])+" received");
+                        //check if end of file reached
+                        if (data.length < 512){
+                            endOfFile = true;
+                            System.out.println("End of file reached");
+                            //final ack only sent once the file is on disk
+                            try{
+                                upload.close();
+                            }
+                            //error packet sent if file could not be saved
+                            catch(IOException e){
+                                System.err.println(e);
+                                sendError(packetReceived,"Could not save file".getBytes(), (byte) 3);
+                                return;
+                            }
+                            saved = true;
+                        }
 
-                    //check if end of file reached
-                    if (data.length < 512){
-                        endOfFile = true;
+                        //write ack to client with block number
+                        sendACK(packetReceived,new byte[]{packetReceived.getData()[2],packetReceived.getData()[3]});
+                        break;
+                    }
+                    //if timeout occurs rewrite packet
+                    catch(SocketTimeoutException e){
+                        record(PacketTrace.TIMEOUT, null);
+                        System.err.println("Timeout from server occured");
+                        System.err.println("Resending packet");
+                        sendACK(packetReceived,new byte[]{packetReceived.getData()[2],packetReceived.getData()[3]});
                     }
-                    break;
-                }
-                //if timeout occurs rewrite packet
-                catch(SocketTimeoutException e){
-                    System.err.println("Timeout from server occured");
-                    System.err.println("Resending packet");
-                    sendACK(packetReceived,new byte[]{packetReceived.getData()[2],packetReceived.getData()[3]});
                 }
             }
         }
-        System.out.println("End of file reached");
-        //saving file
-        try (FileOutputStream fos = new FileOutputStream("src\\tftp\\udp\\server\\"+fileName)) {
-                fos.write(dataFile);
+        //partial file deleted if transfer did not complete
+        finally{
+            if (!saved){
+                upload.abort();
+                System.out.println("Upload failed, file not saved");
+            }
         }
         System.out.println("File saved: src\\tftp\\udp\\server\\"+fileName);
     }
@@ -291,6 +343,23 @@ public class TFTPUDPServer extends Thread{
         return combined; 
     }
     
+    /**
+     * Records packet in the trace if tracing is enabled
+     * 
+     * @param event trace event type
+     * @param packet packet sent or received, null for timeouts
+     */
+    private void record(byte event, DatagramPacket packet){
+        if (trace != null){
+            if (packet == null){
+                trace.record(event, null, 0);
+            }
+            else{
+                trace.record(event, packet.getData(), packet.getLength());
+            }
+        }
+    }
+    
     /**
      * Send acknowledgement packet to client
      * 
@@ -303,6 +372,7 @@ public class TFTPUDPServer extends Thread{
         DatagramPacket ack = new DatagramPacket(ACK, ACK.length, packet.getAddress(), packet.getPort());
         try {
             socket.send(ack);
+            record(PacketTrace.SENT, ack);
         } 
         catch (IOException e) {
             System.err.println(e);
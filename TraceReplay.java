@@ -0,0 +1,337 @@
+package tftp.udp.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the client side of a packet trace against a server with the
+ * recorded timing and reports how the server kept up
+ *
+ * The trace keeps sizes, not file names or contents. Before the timed replay
+ * every download in the trace is uploaded to the server as a file of the
+ * recorded size so the replayed read requests find it. Read requests the
+ * server answered with an error ask for a file that is never created so
+ * they get the same error. Replayed uploads and
+ * these files are stored in the server's upload directory under a prefix
+ * unique to the run, which is printed at the end; they are not deleted
+ * because TFTP has no way to remove files
+ */
+public class TraceReplay {
+
+    private static final long LATE = TimeUnit.MILLISECONDS.toNanos(1); //delay counted as a late send
+
+    private final InetAddress inetAddress;
+    private final int port;
+    protected DatagramSocket socket;
+    private final String prefix = "replay-" + System.currentTimeMillis() + "-"; //names of created files
+
+    private long dropped = -1; //records dropped while recording, -1 if trace has no END record
+
+    //sends waiting for their response, ACKs keyed by block bytes
+    private final Map<Integer, Long> pendingAcks = new ConcurrentHashMap<>();
+    private final Queue<Long> pendingData = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean finished;
+    private long responses; //packets received from the server
+    private long matched; //responses matched to the send they answer
+    private long errors; //error packets from the server
+    private long latencyTotal; //nanoseconds from matched sends to their responses
+
+    public TraceReplay(String address, int port) throws IOException {
+        inetAddress = InetAddress.getByName(address);
+        this.port = port;
+        socket = new DatagramSocket();
+        socket.setSoTimeout(100); //timeout so the receiver can stop
+    }
+
+    public static void main(String[] args) throws IOException {
+        //check for correct number of arguments
+        if (args.length != 1 && args.length != 3) {
+            System.err.println("Usage: java TraceReplay <trace file> [<address> <port>]");
+            System.exit(1);
+        }
+        String address = args.length == 3 ? args[1] : "localhost";
+        int port = args.length == 3 ? Integer.parseInt(args[2]) : 9000;
+
+        new TraceReplay(address, port).replay(new File(args[0]));
+    }
+
+    /**
+     * Sends every packet the server received in the trace at its recorded time
+     *
+     * @param file trace file recorded by PacketTrace
+     * @throws IOException if the trace cannot be read or files cannot be uploaded
+     */
+    public void replay(File file) throws IOException {
+        List<long[]> events = readTrace(file);
+        if (dropped < 0) {
+            System.err.println("Trace has no END record, server did not close it and it may be incomplete");
+        } else if (dropped > 0) {
+            System.err.println("Trace is incomplete, records dropped while recording: " + dropped);
+        }
+
+        //files for the downloads created before timing starts
+        List<Long> downloads = downloadSizes(events);
+        for (int i = 0; i < downloads.size(); i++) {
+            if (downloads.get(i) >= 0) {
+                upload(prefix + "get" + i + ".bin", downloads.get(i));
+            }
+        }
+
+        Thread receiver = new Thread(this::receive, "TraceReplayReceiver");
+        receiver.start();
+
+        long sent = 0;
+        long lost = 0;
+        long late = 0; //packets sent after their recorded time
+        int reads = 0;
+        int writes = 0;
+        long first = -1; //trace time of the first replayed packet
+        long start = System.nanoTime();
+        for (long[] event : events) {
+            if (event[1] == PacketTrace.TIMEOUT) {
+                lost++;
+                continue;
+            }
+            if (event[1] != PacketTrace.RECEIVED) {
+                continue;
+            }
+            //schedule starts at the first packet, not at server start
+            if (first < 0) {
+                first = event[0];
+            }
+            long wait = start + event[0] - first - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (wait < -LATE) {
+                late++;
+            }
+
+            int opCode = (int) event[2];
+            int block = (int) event[3];
+            byte[] data;
+            if (opCode == 1) {
+                //missing files requested again under a name never created
+                String name = downloads.get(reads) >= 0 ? "get" : "missing";
+                data = createRequest(opCode, prefix + name + reads++ + ".bin");
+            } else if (opCode == 2) {
+                data = createRequest(opCode, prefix + "put" + writes++ + ".bin");
+            } else {
+                data = createPacket(opCode, block, (int) event[4]);
+            }
+
+            //expected response registered before sending
+            long now = System.nanoTime();
+            if (opCode == 1 || opCode == 2) {
+                //new transfer, leftovers from the last one are never answered
+                pendingAcks.clear();
+                pendingData.clear();
+            }
+            if (opCode == 2) {
+                pendingAcks.put(0, now);
+            } else if (opCode == 3) {
+                pendingAcks.put(block, now);
+            } else if (opCode == 1 || opCode == 4) {
+                pendingData.add(now);
+            }
+            socket.send(new DatagramPacket(data, data.length, inetAddress, port));
+            sent++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        //gives the server time to answer the last packets
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+        finished = true;
+        try {
+            receiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        socket.close();
+
+        System.out.println("Packets sent: " + sent + " (" + late + " late)");
+        System.out.println("Timeouts in trace: " + lost);
+        System.out.println("Responses received: " + responses + " (" + matched + " matched, " + errors + " errors)");
+        System.out.println("Replay time: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+        if (matched > 0) {
+            System.out.println("Mean response latency: " + TimeUnit.NANOSECONDS.toMicros(latencyTotal / matched) + "us");
+        }
+        if (reads + writes > 0) {
+            System.out.println("Files left on server: " + prefix + "*");
+        }
+    }
+
+    /**
+     * Reads all events from a trace file
+     *
+     * @param file trace file
+     * @return events as time, event, opcode, block and length
+     * @throws IOException if the file is not a trace
+     */
+    private List<long[]> readTrace(File file) throws IOException {
+        List<long[]> events = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != PacketTrace.MAGIC || in.readInt() != PacketTrace.VERSION) {
+                throw new IOException("Not a packet trace: " + file);
+            }
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                long[] event = {time, in.readByte(), in.readUnsignedByte(),
+                    in.readUnsignedShort(), in.readUnsignedShort()};
+                if (event[1] == PacketTrace.END) {
+                    dropped = time;
+                    break;
+                }
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Works out the size of each download from the data the server sent,
+     * resent data after a timeout is not counted
+     *
+     * @param events trace events
+     * @return file size of each read request in trace order, -1 if the
+     * server answered it with an error
+     */
+    private List<Long> downloadSizes(List<long[]> events) {
+        List<Long> sizes = new ArrayList<>();
+        boolean reading = false; //inside a read request
+        boolean answered = false; //first response to the read request seen
+        boolean resend = false; //previous event was a timeout
+        for (long[] event : events) {
+            if (event[1] == PacketTrace.RECEIVED && (event[2] == 1 || event[2] == 2)) {
+                reading = event[2] == 1;
+                answered = false;
+                if (reading) {
+                    sizes.add(0L);
+                }
+            } else if (reading && event[1] == PacketTrace.SENT && !answered && event[2] == 5) {
+                //file was not on the server
+                sizes.set(sizes.size() - 1, -1L);
+                reading = false;
+            } else if (reading && event[1] == PacketTrace.SENT && event[2] == 3 && !resend) {
+                answered = true;
+                int last = sizes.size() - 1;
+                sizes.set(last, sizes.get(last) + event[4] - 4);
+            }
+            resend = event[1] == PacketTrace.TIMEOUT;
+        }
+        return sizes;
+    }
+
+    /**
+     * Uploads a file of the given size to the server with a write request
+     *
+     * @param fileName name to save the file as
+     * @param size file size in bytes
+     * @throws IOException if the server does not acknowledge the upload
+     */
+    private void upload(String fileName, long size) throws IOException {
+        try (DatagramSocket uploadSocket = new DatagramSocket()) {
+            uploadSocket.setSoTimeout(5000);
+            DatagramPacket ack = new DatagramPacket(new byte[516], 516);
+            byte[] request = createRequest(2, fileName);
+            uploadSocket.send(new DatagramPacket(request, request.length, inetAddress, port));
+            uploadSocket.receive(ack);
+
+            //ends with a short block, empty if size is a multiple of 512
+            int block = 1;
+            long remaining = size;
+            while (true) {
+                int length = (int) Math.min(remaining, 512);
+                byte[] data = createPacket(3, block & 0xffff, length + 4);
+                uploadSocket.send(new DatagramPacket(data, data.length, inetAddress, port));
+                uploadSocket.receive(ack);
+                remaining -= length;
+                block++;
+                if (length < 512) {
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Server did not acknowledge upload of " + fileName, e);
+        }
+    }
+
+    /**
+     * Builds a read or write request
+     *
+     * @param opCode 1 for read, 2 for write
+     * @param fileName requested file name
+     * @return packet data
+     */
+    private byte[] createRequest(int opCode, String fileName) {
+        byte[] request = ("\0\0" + fileName + "\0octet\0").getBytes();
+        request[1] = (byte) opCode;
+        return request;
+    }
+
+    /**
+     * Builds a packet with the recorded opcode, block and length
+     *
+     * @param opCode recorded opcode
+     * @param block recorded block bytes
+     * @param length recorded packet length
+     * @return packet data
+     */
+    private byte[] createPacket(int opCode, int block, int length) {
+        byte[] data = new byte[Math.max(length, 4)];
+        data[1] = (byte) opCode;
+        data[2] = (byte) (block >> 8);
+        data[3] = (byte) block;
+        return data;
+    }
+
+    /**
+     * Counts server responses until the replay finishes, matching ACKs to
+     * the data with the same block and data to the oldest unanswered
+     * request or ACK
+     */
+    private void receive() {
+        DatagramPacket packet = new DatagramPacket(new byte[516], 516);
+        while (!finished) {
+            try {
+                socket.receive(packet);
+                long now = System.nanoTime();
+                byte[] data = packet.getData();
+                responses++;
+
+                Long sentAt = null;
+                if (packet.getLength() >= 4 && data[1] == 4) {
+                    sentAt = pendingAcks.remove(((data[2] & 0xff) << 8) | (data[3] & 0xff));
+                } else if (data[1] == 3) {
+                    sentAt = pendingData.poll();
+                } else if (data[1] == 5) {
+                    errors++;
+                }
+                if (sentAt != null) {
+                    latencyTotal += now - sentAt;
+                    matched++;
+                }
+            } catch (SocketTimeoutException e) {
+                //checks if replay finished
+            } catch (IOException e) {
+                if (!finished) {
+                    System.err.println(e);
+                }
+                return;
+            }
+        }
+    }
+}
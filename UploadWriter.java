@@ -0,0 +1,271 @@
+package tftp.udp.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Write-behind stage for uploaded files. Received blocks are queued to a
+ * single writer thread which writes each upload's queued blocks with one
+ * gathering write to a temporary file. When an upload ends, its file is
+ * synced, renamed over the target and the directory synced before the
+ * session is released. Every upload gets its own sync; nothing is shared
+ * between uploads, the server only handles one at a time
+ */
+public class UploadWriter extends Thread {
+
+    private final BlockingQueue<Block> queue = new LinkedBlockingQueue<>();
+
+    public UploadWriter() {
+        super("UploadWriter");
+        setDaemon(true);
+    }
+
+    /**
+     * Opens a new upload session, the given file is only replaced once the
+     * upload has been saved
+     *
+     * @param file file the upload is saved to
+     * @return session to queue blocks on
+     * @throws IOException if the temporary file cannot be created
+     */
+    public Session open(File file) throws IOException {
+        file = file.getAbsoluteFile();
+        File temp = File.createTempFile("." + file.getName() + ".", ".part", file.getParentFile());
+        try {
+            return new Session(file, temp, FileChannel.open(temp.toPath(), StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+        //runs forever, server thread owns the lifetime
+        while (true) {
+            List<Block> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            try {
+                writeBatch(batch);
+            }
+            //fails every session in the batch so no close waits forever
+            catch (RuntimeException | Error e) {
+                System.err.println(e);
+                for (Block block : batch) {
+                    //uploads already committed in this batch are left alone
+                    if (block.session.committed.getCount() == 0) {
+                        continue;
+                    }
+                    block.session.fail(new IOException("Upload writer failed", e));
+                    if (block.data == null) {
+                        block.session.finish();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of queued blocks and ends the uploads finished in it
+     *
+     * @param batch blocks taken from the queue
+     */
+    private void writeBatch(List<Block> batch) {
+        //group queued blocks by session keeping arrival order
+        Map<Session, List<Block>> sessions = new LinkedHashMap<>();
+        for (Block block : batch) {
+            sessions.computeIfAbsent(block.session, s -> new ArrayList<>()).add(block);
+        }
+
+        List<Block> finished = new ArrayList<>();
+        for (Map.Entry<Session, List<Block>> entry : sessions.entrySet()) {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            for (Block block : entry.getValue()) {
+                if (block.data == null) {
+                    finished.add(block);
+                } else {
+                    buffers.add(ByteBuffer.wrap(block.data));
+                }
+            }
+            //adjacent blocks written with one call
+            entry.getKey().write(buffers.toArray(new ByteBuffer[0]));
+        }
+
+        //syncs each upload finished in this batch, aborted ones are only closed
+        for (Block block : finished) {
+            if (block.abort) {
+                block.session.fail(new IOException("Upload aborted"));
+                block.session.finish();
+            } else {
+                block.session.commit();
+            }
+        }
+    }
+
+    /**
+     * Queued data block, a null data marks the end of an upload
+     */
+    private static class Block {
+        final Session session;
+        final byte[] data;
+        final boolean abort; //end of an upload that is discarded
+
+        Block(Session session, byte[] data, boolean abort) {
+            this.session = session;
+            this.data = data;
+            this.abort = abort;
+        }
+    }
+
+    /**
+     * Single upload queued on the writer
+     */
+    public class Session {
+
+        private final File file; //file replaced once the upload is saved
+        private final File temp; //file the upload is written to
+        private final FileChannel channel;
+        private final CountDownLatch committed = new CountDownLatch(1);
+        private IOException failure; //first error from the writer thread
+
+        private Session(File file, File temp, FileChannel channel) {
+            this.file = file;
+            this.temp = temp;
+            this.channel = channel;
+        }
+
+        /**
+         * Queues a block of file data, returns without waiting for the disk
+         *
+         * @param data file data from a data packet
+         */
+        public void add(byte[] data) {
+            if (data.length > 0) {
+                queue.add(new Block(this, data, false));
+            }
+        }
+
+        /**
+         * Ends the upload and waits until all of its data is synced to disk
+         *
+         * @throws IOException if any write or the sync failed
+         */
+        public void close() throws IOException {
+            queue.add(new Block(this, null, false));
+            try {
+                committed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * Discards the upload and deletes the temporary file, also used after
+         * a failed close. The file being replaced is left as it was
+         */
+        public void abort() {
+            //session still open on the writer
+            if (committed.getCount() > 0) {
+                queue.add(new Block(this, null, true));
+                try {
+                    committed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (temp.exists() && !temp.delete()) {
+                System.err.println("Could not delete partial file: " + temp);
+            }
+        }
+
+        private void write(ByteBuffer[] buffers) {
+            if (failure != null || buffers.length == 0) {
+                return;
+            }
+            try {
+                //gathering write may stop early, repeats until every buffer is written
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        private void commit() {
+            try {
+                if (failure == null) {
+                    channel.force(true);
+                    channel.close();
+                    replace();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+            finish();
+        }
+
+        /**
+         * Renames the synced temporary file over the target and syncs the
+         * directory so the new name is durable too
+         *
+         * @throws IOException if the rename or directory sync failed
+         */
+        private void replace() throws IOException {
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            FileChannel directory;
+            try {
+                directory = FileChannel.open(file.getParentFile().toPath(), StandardOpenOption.READ);
+            }
+            //directories cannot be opened on Windows, rename is journaled there
+            catch (IOException e) {
+                return;
+            }
+            try (FileChannel dir = directory) {
+                dir.force(true);
+            }
+        }
+
+        private void finish() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            committed.countDown();
+        }
+    }
+}